@@ -0,0 +1,477 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class ConsumerGroup holds the Receivers connected with the same receiverID
+ * in the MQ system. The messages of the receiverID's MessageLog are
+ * distributed among the members, either to the member with the fewest
+ * undelivered messages or, if the group is key ordered, always to the same
+ * member for the same senderID. Messages which do not match the group's
+ * Selector are dropped before they are assigned.
+ * <P>
+ * A message whose delivery failed MAX_ATTEMPTS times is moved to the group's
+ * dead-letter queue, so the messages behind it keep flowing. A delivery fails
+ * if the Receiver throws an exception for the message or reports that its
+ * handler failed, or if the Receiver is lost in the middle of the call that
+ * delivers the message. A Receiver which is lost otherwise, say its handler
+ * crashed the Receiver's JVM, charges the oldest message it received and did
+ * not commit, the likeliest cause. Only that one message is charged, the
+ * others it held are delivered again without a charge.
+ * <P>
+ * Whenever a member joins or leaves, the group is rebalanced: the MessageLog
+ * is rewound to the committed offset and the messages are assigned again. In
+ * a key ordered group the messages of a senderID are handled in order while
+ * the membership is stable. A rebalance may move a senderID to another member
+ * while the old one still handles some of its messages.
+ * <P>
+ * A ConsumerGroup is not synchronized, it is guarded by the MQServer's lock.
+ */
+public class ConsumerGroup {
+	// Maximum number of undelivered messages assigned to one member, unless
+	// the group is key ordered
+	private static final int MAX_PENDING = 100;
+	// Number of failed deliveries after which a message is dead-lettered
+	private static final int MAX_ATTEMPTS = 5;
+
+	private MessageLog log;
+	private ArrayList<Member> members = new ArrayList<Member>();
+	// If true, the messages are assigned by senderID
+	private boolean keyOrdered = false;
+	// Only the messages matching the selector are delivered, null for all
+	private Selector selector = null;
+	// Incremented on every rebalance, deliveries started before it are stale
+	private int generation = 0;
+	// Member to try first for the next message, for round-robin assignment
+	private int nextMember = 0;
+	// Messages which failed MAX_ATTEMPTS times, in the order they failed
+	private ArrayList<Message> deadLetters = new ArrayList<Message>();
+
+	/**
+	 * Class Member holds one Receiver of the group and the messages assigned
+	 * to it.
+	 */
+	public static class Member {
+		public final ReceiverRef ref;
+		public long leaseExpiration;
+		// Messages assigned to the member but not delivered yet
+		ArrayDeque<Message> pending = new ArrayDeque<Message>();
+		// Offsets delivered to the member but not committed yet
+		ArrayDeque<Long> delivered = new ArrayDeque<Long>();
+		// Offset of the message being delivered, or -1
+		long sending = -1;
+		// True while a thread is delivering the pending messages
+		boolean delivering = false;
+
+		Member(ReceiverRef ref, long leaseExpiration) {
+			this.ref = ref;
+			this.leaseExpiration = leaseExpiration;
+		}
+	}
+
+	/**
+	 * Construct a new ConsumerGroup object.
+	 * 
+	 * @param log
+	 *            The MessageLog of the group's receiverID.
+	 */
+	public ConsumerGroup(MessageLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Construct a ConsumerGroup object with the given dead-letter queue, for
+	 * loading a snapshot.
+	 * 
+	 * @param log
+	 *            The MessageLog of the group's receiverID.
+	 * @param deadLetters
+	 *            The dead-lettered messages.
+	 */
+	public ConsumerGroup(MessageLog log, List<Message> deadLetters) {
+		this.log = log;
+		this.deadLetters.addAll(deadLetters);
+	}
+
+	/**
+	 * Add a Receiver to the group, replacing it if it is already a member, and
+	 * rebalance the group. The ordering and the selector can only change while
+	 * the Receiver is the only member.
+	 * 
+	 * @param ref
+	 *            The Receiver's unicastRemote object
+	 * @param keyOrdered
+	 *            True if the messages are to be assigned by senderID
+	 * @param selector
+	 *            The selector of the group, or null for all messages
+	 * @param leaseExpiration
+	 *            The expiration time of the Receiver's lease
+	 * 
+	 * @return The new member.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                Thrown if the ordering or the selector conflicts with
+	 *                the other members.
+	 */
+	public Member join(ReceiverRef ref, boolean keyOrdered,
+			Selector selector, long leaseExpiration) {
+		Member old = find(ref);
+		boolean others = members.size() > (old == null ? 0 : 1);
+		if (others && keyOrdered != this.keyOrdered) {
+			throw new IllegalArgumentException(
+					"MQServer: Invalid <ordered>: the other Receivers of the group are "
+							+ (this.keyOrdered ? "" : "not ") + "ordered");
+		}
+		if (others
+				&& !(selector == null ? this.selector == null : selector
+						.equals(this.selector))) {
+			throw new IllegalArgumentException(
+					"MQServer: Invalid <selector>: the other Receivers of the group use "
+							+ (this.selector == null ? "no selector" : "\""
+									+ this.selector + "\""));
+		}
+		if (old != null) {
+			members.remove(old);
+			old.pending.clear();
+		}
+		Member member = new Member(ref, leaseExpiration);
+		members.add(member);
+		this.keyOrdered = keyOrdered;
+		this.selector = selector;
+		rebalance();
+		return member;
+	}
+
+	/**
+	 * Remove a member which was lost from the group and rebalance the group.
+	 * One message counts as a failed delivery: the message being delivered if
+	 * the member was lost in the middle of the call, otherwise the oldest
+	 * message delivered to the member and not committed.
+	 * 
+	 * @param member
+	 *            The member to remove
+	 * @param midCall
+	 *            True if the member was lost in the middle of delivering a
+	 *            message
+	 * 
+	 * @return True if it was a member of the group.
+	 */
+	public boolean leave(Member member, boolean midCall) {
+		if (!members.remove(member)) {
+			return false;
+		}
+		Message message = null;
+		if (midCall) {
+			message = log.get(member.sending);
+		} else if (!member.delivered.isEmpty()) {
+			message = log.get(member.delivered.peek());
+		}
+		if (message != null && message.offset >= log.committedOffset()) {
+			System.out.println("From " + message.senderID + " to "
+					+ message.receiverID + ": " + "\"" + message.messageText
+					+ "\"" + " failed, Receiver lost");
+			attemptFailed(message);
+		}
+		member.pending.clear();
+		rebalance();
+		return true;
+	}
+
+	/**
+	 * Find the member of the given Receiver.
+	 * 
+	 * @param ref
+	 *            The Receiver's unicastRemote object
+	 * 
+	 * @return The member, or null if the Receiver is not a member.
+	 */
+	public Member find(ReceiverRef ref) {
+		for (Member member : members) {
+			if (member.ref.equals(ref)) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The members of the group.
+	 */
+	public List<Member> members() {
+		return members;
+	}
+
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	public int generation() {
+		return generation;
+	}
+
+	/**
+	 * Assign the undelivered messages of the MessageLog to the members, until
+	 * the log is empty or the member to assign to has too many undelivered
+	 * messages. In a key ordered group a message has only one member to go
+	 * to, so it is assigned anyway: stopping would hold up the messages of
+	 * every other member behind one slow member. Messages not matching the
+	 * selector are dropped.
+	 * 
+	 * @return The members which have messages to deliver and no thread
+	 *         delivering them yet, they are marked as delivering.
+	 */
+	public List<Member> dispatch() {
+		Message message;
+		boolean dropped = false;
+		while (!members.isEmpty() && (message = log.peek()) != null) {
+			if (message.attempts >= MAX_ATTEMPTS) {
+				// Already in the dead-letter queue
+				log.next();
+				dropped = true;
+				continue;
+			}
+			if (selector != null && !selector.matches(message)) {
+				log.next();
+				dropped = true;
+				System.out.println("From " + message.senderID + " to "
+						+ message.receiverID + ": " + "\""
+						+ message.messageText + "\"" + " dropped");
+				continue;
+			}
+			Member member = choose(message);
+			if (member == null) {
+				break;
+			}
+			member.pending.add(log.next());
+		}
+		if (dropped) {
+			updateCommitted();
+		}
+		List<Member> idle = new ArrayList<Member>();
+		for (Member member : members) {
+			if (!member.delivering && !member.pending.isEmpty()) {
+				member.delivering = true;
+				idle.add(member);
+			}
+		}
+		return idle;
+	}
+
+	/**
+	 * Take the next message to deliver to a member. If there is none the
+	 * member is no longer marked as delivering.
+	 * 
+	 * @param member
+	 *            The member to deliver to
+	 * 
+	 * @return The message, or null if the member has nothing to deliver.
+	 */
+	public Message take(Member member) {
+		Message message = member.pending.poll();
+		if (message == null) {
+			member.delivering = false;
+			return null;
+		}
+		member.sending = message.offset;
+		return message;
+	}
+
+	/**
+	 * Record that a message was delivered to a member.
+	 * 
+	 * @param member
+	 *            The member the message was delivered to
+	 * @param message
+	 *            The delivered message
+	 * @param generation
+	 *            The generation of the group when the message was taken
+	 */
+	public void delivered(Member member, Message message, int generation) {
+		member.sending = -1;
+		if (generation == this.generation) {
+			member.delivered.add(message.offset);
+		}
+	}
+
+	/**
+	 * Record that the delivery of a message to a member failed while the
+	 * member is still alive. The message is delivered again first, unless it
+	 * is dead-lettered.
+	 * 
+	 * @param member
+	 *            The member the message was delivered to
+	 * @param message
+	 *            The message which failed
+	 * @param generation
+	 *            The generation of the group when the message was taken
+	 */
+	public void failed(Member member, Message message, int generation) {
+		member.sending = -1;
+		if (!attemptFailed(message) && generation == this.generation) {
+			member.pending.addFirst(message);
+		}
+		updateCommitted();
+	}
+
+	/**
+	 * Record that the handler of a member failed on a message delivered to
+	 * it. The message is delivered to the member again first, unless it is
+	 * dead-lettered.
+	 * 
+	 * @param member
+	 *            The member which failed
+	 * @param offset
+	 *            The offset of the message which failed
+	 * 
+	 * @return True if the message was delivered to the member and not
+	 *         committed yet.
+	 */
+	public boolean rejected(Member member, long offset) {
+		Message message = log.get(offset);
+		if (message == null || !member.delivered.remove(offset)) {
+			return false;
+		}
+		System.out.println("From " + message.senderID + " to "
+				+ message.receiverID + ": " + "\"" + message.messageText
+				+ "\"" + " failed");
+		if (!attemptFailed(message)) {
+			member.pending.addFirst(message);
+		}
+		updateCommitted();
+		return true;
+	}
+
+	/**
+	 * @return A copy of the dead-letter queue.
+	 */
+	public ArrayList<Message> deadLetters() {
+		return new ArrayList<Message>(deadLetters);
+	}
+
+	/**
+	 * Append the dead-lettered messages to the MessageLog again, with their
+	 * failed deliveries reset, and empty the dead-letter queue.
+	 * 
+	 * @return The number of messages replayed.
+	 */
+	public int replayDeadLetters() {
+		for (Message dead : deadLetters) {
+			Message message = new Message(dead.senderID, dead.receiverID,
+					dead.messageText);
+			message.headers = dead.headers;
+			log.append(message);
+		}
+		int count = deadLetters.size();
+		deadLetters.clear();
+		return count;
+	}
+
+	/**
+	 * Record that a member has processed every message delivered to it before
+	 * the given offset, and commit the lowest offset which is not processed by
+	 * any member to the MessageLog.
+	 * 
+	 * @param member
+	 *            The member which commits
+	 * @param offset
+	 *            Offset of the next message the member still needs
+	 */
+	public void commit(Member member, long offset) {
+		while (!member.delivered.isEmpty()
+				&& member.delivered.peek() < offset) {
+			member.delivered.poll();
+		}
+		updateCommitted();
+	}
+
+	/**
+	 * Commit the lowest offset which is not processed by any member to the
+	 * MessageLog.
+	 */
+	private void updateCommitted() {
+		long committed = log.deliveryOffset();
+		for (Member m : members) {
+			if (!m.delivered.isEmpty()) {
+				committed = Math.min(committed, m.delivered.peek());
+			}
+			if (m.sending >= 0) {
+				committed = Math.min(committed, m.sending);
+			}
+			if (!m.pending.isEmpty()) {
+				committed = Math.min(committed, m.pending.peek().offset);
+			}
+		}
+		log.commit(committed);
+	}
+
+	/**
+	 * Count a failed delivery of a message, and move it to the dead-letter
+	 * queue when it failed MAX_ATTEMPTS times.
+	 * 
+	 * @param message
+	 *            The message which failed
+	 * 
+	 * @return True if the message is dead-lettered.
+	 */
+	private boolean attemptFailed(Message message) {
+		message.attempts++;
+		if (message.attempts < MAX_ATTEMPTS) {
+			return false;
+		}
+		if (message.attempts == MAX_ATTEMPTS) {
+			deadLetters.add(message);
+			System.out.println("From " + message.senderID + " to "
+					+ message.receiverID + ": " + "\"" + message.messageText
+					+ "\"" + " dead-lettered");
+		}
+		return true;
+	}
+
+	/**
+	 * Choose the member a message is assigned to.
+	 * 
+	 * @param message
+	 *            The message to assign
+	 * 
+	 * @return The member, or null if it has too many undelivered messages and
+	 *         the group is not key ordered.
+	 */
+	private Member choose(Message message) {
+		if (members.isEmpty()) {
+			return null;
+		}
+		Member chosen;
+		if (keyOrdered) {
+			chosen = members.get(Math.abs(message.senderID % members.size()));
+		} else {
+			// Least outstanding, ties broken round-robin
+			int size = members.size();
+			int first = nextMember % size;
+			chosen = members.get(first);
+			for (int i = 1; i < size; i++) {
+				Member member = members.get((first + i) % size);
+				if (member.pending.size() < chosen.pending.size()) {
+					chosen = member;
+				}
+			}
+			nextMember = members.indexOf(chosen) + 1;
+		}
+		return keyOrdered || chosen.pending.size() < MAX_PENDING ? chosen
+				: null;
+	}
+
+	/**
+	 * Rewind the MessageLog to the committed offset and drop the assignments
+	 * of all members, the messages not processed yet are assigned again.
+	 */
+	private void rebalance() {
+		generation++;
+		for (Member member : members) {
+			member.pending.clear();
+			member.delivered.clear();
+		}
+		log.rewind();
+		nextMember = 0;
+	}
+
+}
@@ -0,0 +1,110 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+import edu.rit.ds.registry.NotBoundException;
+import edu.rit.ds.registry.RegistryProxy;
+
+/**
+ * Class DeadLetters is a client program for inspecting the dead-letter queue
+ * of a receiverID on a MQServer, and for replaying the dead-lettered messages.
+ * <P>
+ * Usage: java DeadLetters <I>host</I> <I>port</I> <I>serverName</I>
+ * <I>receiverID</I> [replay] <BR>
+ * <I>host</I> = Registry Server's host <BR>
+ * <I>port</I> = Registry Server's port <BR>
+ * <I>serverName</I> = MQServer's name <BR>
+ * <I>receiverID</I> = ID of the receiver <BR>
+ * replay = Queue the dead-lettered messages again
+ */
+public class DeadLetters {
+
+	/**
+	 * Print or replay the dead-lettered messages of a receiverID
+	 * 
+	 * @param args
+	 *            Command line arguments.
+	 * 
+	 * @exception Exception
+	 *                Thrown if exception is occured
+	 */
+	public static void main(String[] args) throws Exception {
+		// Parse command line arguments.
+		if (args.length != 4
+				&& !(args.length == 5 && args[4].equals("replay"))) {
+			usage();
+		}
+		String host = args[0];
+		int port = parseInt(args[1], "port");
+		String serverName = args[2];
+		int receiverID = parseInt(args[3], "receiverID");
+
+		try {
+			// Look up serverName in the Registry server.
+			RegistryProxy registry = new RegistryProxy(host, port);
+			try {
+				MQServerRef msgObj = (MQServerRef) registry.lookup(serverName);
+
+				if (args.length == 5) {
+					int count = msgObj.replayDeadLetters(receiverID);
+					System.out.println(count + " messages replayed to "
+							+ receiverID);
+				} else {
+					List<Message> messages = msgObj.deadLetters(receiverID);
+					for (Message message : messages) {
+						System.out.println("From " + message.senderID
+								+ " to " + message.receiverID + ": " + "\""
+								+ message.messageText + "\"" + " failed "
+								+ message.attempts + " times");
+					}
+					System.out.println(messages.size()
+							+ " dead-lettered messages");
+				}
+			} catch (NotBoundException e) {
+				System.err.println("Server Not found");
+				usage();
+			}
+		} catch (RemoteException e) {
+			System.err.println("Registry Server Not found");
+			usage();
+		}
+	}
+
+	/**
+	 * Print a usage message and exit.
+	 */
+	private static void usage() {
+		System.err
+				.println("Usage: java DeadLetters <host> <port> <servername> <receiverID> [replay]");
+		System.err.println("<host> = Registry Server's host");
+		System.err.println("<port> = Registry Server's port");
+		System.err.println("<servername> = MQServer's name");
+		System.err
+				.println("<receiverID> = ID of the Receiver ( Must be an Integer )");
+		System.err.println("replay = Queue the dead-lettered messages again");
+		System.exit(1);
+	}
+
+	/**
+	 * Parse an integer command line argument.
+	 * 
+	 * @param arg
+	 *            Command line argument.
+	 * @param name
+	 *            Argument name.
+	 * 
+	 * @return Integer value of <TT>arg</TT>.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                (unchecked exception) Thrown if <TT>arg</TT> cannot be
+	 *                parsed as an integer.
+	 */
+	private static int parseInt(String arg, String name) {
+		try {
+			return Integer.parseInt(arg);
+		} catch (NumberFormatException exc) {
+			System.err.println("DeadLetters: Invalid " + name + " " + arg);
+			usage();
+			return 0;
+		}
+	}
+}
@@ -1,8 +1,21 @@
+import java.io.File;
+import java.io.IOException;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import edu.rit.ds.Lease;
 import edu.rit.ds.RemoteEventGenerator;
@@ -14,10 +27,16 @@ import edu.rit.ds.registry.RegistryProxy;
  * Class MQServer provides a Java RMI distributed MQServer object in the MQ
  * system.
  * <P>
- * Usage: java Start MQServer <I>host</I> <I>port</I> <I>ServerName</I> <BR>
+ * Usage: java Start MQServer <I>host</I> <I>port</I> <I>ServerName</I>
+ * [<I>snapshotDir</I>] <BR>
  * <I>host</I> = Registry Server's host <BR>
  * <I>port</I> = Registry Server's port <BR>
- * <I>ServerName</I> = ID of this MQServer itself
+ * <I>ServerName</I> = ID of this MQServer itself <BR>
+ * <I>snapshotDir</I> = Directory for snapshots of the queued messages
+ * <P>
+ * If a snapshot directory is given, the latest snapshot in it is loaded on
+ * startup, a new snapshot is taken periodically and on shutdown. Receivers
+ * are not part of a snapshot, they join again with their next heartbeat.
  * 
  */
 public class MQServer implements MQServerRef {
@@ -25,14 +44,26 @@ public class MQServer implements MQServerRef {
 	private int port;
 	private String mqServerName;
 	private RegistryProxy registry;
-	// HashMap to store the message objects which contains receiverID,senderID
-	// and messageText,The message object
-	// is used as the value and receiverID as
-	// the key
-	private HashMap<Integer, ArrayList<Message>> msgqueue = new HashMap<Integer, ArrayList<Message>>();
-	// HashMap to store the Receiver objects,the receiver objects are used as
-	// the value and receiverID as the key
-	private HashMap<Integer, ReceiverRef> receiverlist = new HashMap<Integer, ReceiverRef>();
+	// HashMap to store the MessageLog of every receiverID, the MessageLog
+	// holds the message objects which contain receiverID, senderID and
+	// messageText, and is used as the value with receiverID as the key
+	private HashMap<Integer, MessageLog> msgqueue = new HashMap<Integer, MessageLog>();
+	// HashMap to store the ConsumerGroup of every receiverID, the group holds
+	// the Receiver objects connected with that receiverID
+	private HashMap<Integer, ConsumerGroup> receiverlist = new HashMap<Integer, ConsumerGroup>();
+	// Duration in milliseconds of a Receiver's lease, the Receiver renews it
+	// with a heartbeat, see Receiver.HEARTBEAT_INTERVAL
+	private static final long LEASE_DURATION = 10000;
+	// Threads delivering the messages to the Receivers, one per busy member
+	private ExecutorService deliveryPool = Executors.newCachedThreadPool();
+	// Interval in milliseconds between two snapshots
+	private static final long SNAPSHOT_INTERVAL = 60000;
+	// Number of messages captured for a snapshot while holding the lock
+	private static final int CAPTURE_CHUNK = 4096;
+	// Directory for the snapshots, or null if snapshots are not taken
+	private File snapshotDir;
+	// Only one snapshot is taken at a time
+	private final Object snapshotLock = new Object();
 	private RemoteEventGenerator<ServerEvent> eventGenerator;
 	// To count the incoming messages from the senders
 	private int incomingCount = 0;
@@ -45,7 +76,8 @@ public class MQServer implements MQServerRef {
 	 * The command line arguments are: <BR>
 	 * <TT>args[0]</TT> = Registry Server's host <BR>
 	 * <TT>args[1]</TT> = Registry Server's port <BR>
-	 * <TT>args[2]</TT> = Name of the MQServer itself
+	 * <TT>args[2]</TT> = Name of the MQServer itself <BR>
+	 * <TT>args[3]</TT> = Snapshot directory (optional)
 	 * 
 	 * 
 	 * @param args
@@ -60,7 +92,7 @@ public class MQServer implements MQServerRef {
 
 		try {
 			// Parse command line arguments.
-			if (args.length != 3) {
+			if (args.length != 3 && args.length != 4) {
 				System.out.println("Invalid number of Arguments");
 				throw new IllegalArgumentException(
 						"Usage: java Start MQServer <host> <port> <Servername>");
@@ -69,6 +101,10 @@ public class MQServer implements MQServerRef {
 			host = args[0];
 			port = parseInt(args[1], "port");
 			mqServerName = args[2];
+			if (args.length == 4) {
+				snapshotDir = new File(args[3]);
+				loadSnapshot();
+			}
 			try {
 				// Get a proxy for the Registry Server.
 				registry = new RegistryProxy(host, port);
@@ -78,9 +114,32 @@ public class MQServer implements MQServerRef {
 				// Prepare to generate remote events.
 				eventGenerator = new RemoteEventGenerator<ServerEvent>();
 
+				// Move the Receivers whose lease expired to queued mode.
+				new Timer(true).schedule(new TimerTask() {
+					public void run() {
+						expireLeases();
+					}
+				}, LEASE_DURATION / 2, LEASE_DURATION / 2);
+
 				// Bind Message Queue into the Registry Server.
 				try {
 					registry.bind(mqServerName, this);
+
+					// Take snapshots periodically and on shutdown, only once
+					// this MQServer is bound, so a second MQServer with the
+					// same name never overwrites the snapshot of the first.
+					if (snapshotDir != null) {
+						new Timer(true).schedule(new TimerTask() {
+							public void run() {
+								takeSnapshot();
+							}
+						}, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL);
+						Runtime.getRuntime().addShutdownHook(new Thread() {
+							public void run() {
+								takeSnapshot();
+							}
+						});
+					}
 				} catch (AlreadyBoundException e) {
 					try {
 						UnicastRemoteObject.unexportObject(this, true);
@@ -105,7 +164,9 @@ public class MQServer implements MQServerRef {
 
 	/**
 	 * This method is called by Sender to forward the messages to the receiver,
-	 * it is synchronized for multiple senders to access it simultaneously
+	 * the message is appended to the receiver's MessageLog and delivered
+	 * asynchronously to a Receiver of its ConsumerGroup. It is synchronized for
+	 * multiple senders to access it simultaneously
 	 * 
 	 * @param message
 	 *            The message object contains SenderID, ReceiverID, messageText
@@ -117,111 +178,477 @@ public class MQServer implements MQServerRef {
 	 */
 	public synchronized void messageSender(Message message)
 			throws RemoteException {
-		// TODO Auto-generated method stub
-
-		if (receiverlist.containsKey(message.receiverID)) {
-
-			ReceiverRef recref = (ReceiverRef) receiverlist
-					.get(message.receiverID);
-			try {
-				recref.getMessage(message);
-
-				// Split message
+		getLog(message.receiverID).append(message);
+		incomingCount++;
+		ConsumerGroup group = getGroup(message.receiverID);
+		if (group.isEmpty()) {
+			System.out.println("From " + message.senderID + " to "
+					+ message.receiverID + ": " + "\"" + message.messageText
+					+ "\"" + " queued");
+		}
+		eventGenerator.reportEvent(new ServerEvent(mqServerName,
+				incomingCount, outgoingCount));
+		startDelivery(group, group.dispatch());
+	}
 
-				System.out.println("From " + message.senderID + " to "
-						+ message.receiverID + ": " + "\""
-						+ message.messageText + "\"" + " delivered");
-				incomingCount++;
-				outgoingCount++;
+	/**
+	 * This method is called by the Receiver to receive the messages from the
+	 * MQserver, the Receiver joins the ConsumerGroup of the receiverID without
+	 * key ordering
+	 * 
+	 * @param recObj
+	 *            The message contains the Receiver's unicastRemote object
+	 * 
+	 * @param Message
+	 *            The message object contains SenderID, ReceiverID, messageText
+	 * @return null
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void messageReceiver(ReceiverRef recObj, Message message)
+			throws RemoteException {
+		messageReceiver(recObj, new Subscription(message.receiverID, false));
+	}
 
-			} catch (Exception e) {
-				receiverlist.remove(message.receiverID);
-				ArrayList<Message> msglist = new ArrayList<Message>();
-				msglist.add(message);
-				msgqueue.put(message.receiverID, msglist);
-				System.out.println("From " + message.senderID + " to "
-						+ message.receiverID + ": " + "\""
-						+ message.messageText + "\"" + " queued");
-				incomingCount++;
+	/**
+	 * This method is called by the Receiver to join the ConsumerGroup of a
+	 * receiverID. The group is rebalanced and the delivery resumes from the
+	 * offset last committed for the receiverID. The subscription's selector
+	 * is compiled once here, all Receivers of a group use the same selector
+	 * 
+	 * @param recObj
+	 *            The Receiver's unicastRemote object
+	 * @param subscription
+	 *            The receiverID and the ordering of the group
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 * @exception IllegalArgumentException
+	 *                Thrown if the selector is not valid, or the ordering or
+	 *                the selector conflicts with the other Receivers of the
+	 *                group.
+	 */
+	public synchronized void messageReceiver(ReceiverRef recObj,
+			Subscription subscription) throws RemoteException {
+		Selector selector = subscription.selector == null ? null : Selector
+				.compile(subscription.selector);
+		ConsumerGroup group = getGroup(subscription.receiverID);
+		group.join(recObj, subscription.keyOrdered, selector,
+				System.currentTimeMillis() + LEASE_DURATION);
+		System.out.println("Receiver " + subscription.receiverID + " joined, "
+				+ group.members().size() + " in group");
+		startDelivery(group, group.dispatch());
+	}
 
-			}
-			eventGenerator.reportEvent(new ServerEvent(mqServerName,
-					incomingCount, outgoingCount));
+	/**
+	 * This method is called by the Receiver to commit the offset of the next
+	 * message it has not processed yet
+	 * 
+	 * @param recObj
+	 *            The Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * @param offset
+	 *            The offset of the next message the Receiver still needs
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public synchronized void commitOffset(ReceiverRef recObj, int receiverID,
+			long offset) throws RemoteException {
+		ConsumerGroup group = receiverlist.get(receiverID);
+		ConsumerGroup.Member member = group == null ? null : group
+				.find(recObj);
+		if (member != null) {
+			group.commit(member, offset);
 		}
+	}
 
-		else {
-			// If the sender/message HashMap contains the receiverID
-			if (msgqueue.containsKey(message.receiverID)) {
-
-				ArrayList<Message> msgObj = msgqueue.get(message.receiverID);
-				msgObj.add(message);
-				msgqueue.put(message.receiverID, msgObj);
-				System.out.println("From " + message.senderID + " to "
-						+ message.receiverID + ": " + "\""
-						+ message.messageText + " queued");
-				incomingCount++;
-
-			} else {
-				ArrayList<Message> msglist = new ArrayList<Message>();
-				msglist.add(message);
-				msgqueue.put(message.receiverID, msglist);
-				System.out.println("From " + message.senderID + " to "
-						+ message.receiverID + ": " + "\""
-						+ message.messageText + "\"" + " queued ");
-				incomingCount++;
+	/**
+	 * This method is called by the Receiver when its handler failed on a
+	 * message
+	 * 
+	 * @param recObj
+	 *            The Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * @param offset
+	 *            The offset of the message which failed
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public synchronized void rejectMessage(ReceiverRef recObj,
+			int receiverID, long offset) throws RemoteException {
+		ConsumerGroup group = receiverlist.get(receiverID);
+		ConsumerGroup.Member member = group == null ? null : group
+				.find(recObj);
+		if (member != null && group.rejected(member, offset)) {
+			startDelivery(group, group.dispatch());
+		}
+	}
 
-			}
-			eventGenerator.reportEvent(new ServerEvent(mqServerName,
-					incomingCount, outgoingCount));
+	/**
+	 * This method is called by the Receiver periodically to renew its lease
+	 * 
+	 * @param recObj
+	 *            The Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return True if the lease is renewed, false if the Receiver is not
+	 *         connected any more and has to call messageReceiver again.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public synchronized boolean heartbeat(ReceiverRef recObj, int receiverID)
+			throws RemoteException {
+		ConsumerGroup group = receiverlist.get(receiverID);
+		ConsumerGroup.Member member = group == null ? null : group
+				.find(recObj);
+		if (member == null) {
+			return false;
 		}
+		member.leaseExpiration = System.currentTimeMillis() + LEASE_DURATION;
+		return true;
+	}
 
+	/**
+	 * This method is called to inspect the dead-letter queue of a receiverID
+	 * 
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return The dead-lettered messages, in the order they failed.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public synchronized List<Message> deadLetters(int receiverID)
+			throws RemoteException {
+		ConsumerGroup group = receiverlist.get(receiverID);
+		if (group == null) {
+			return new ArrayList<Message>();
+		}
+		return group.deadLetters();
 	}
 
 	/**
-	 * This method is called by the Receiver to receive the messages from the
-	 * MQserver, it is synchronized for multiple receivers to access it
-	 * simultaneously
+	 * This method is called to queue the dead-lettered messages of a
+	 * receiverID again
 	 * 
-	 * @param recObj
-	 *            The message contains the Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
 	 * 
-	 * @param Message
-	 *            The message object contains SenderID, ReceiverID, messageText
-	 * @return null
+	 * @return The number of messages replayed.
 	 * 
 	 * @exception RemoteException
 	 *                Thrown if a remote error occurred.
 	 */
-	public synchronized void messageReceiver(ReceiverRef recObj, Message message)
+	public synchronized int replayDeadLetters(int receiverID)
 			throws RemoteException {
-		// Insert the receiver object in the HashMap
-		receiverlist.put(message.receiverID, recObj);
+		ConsumerGroup group = receiverlist.get(receiverID);
+		if (group == null) {
+			return 0;
+		}
+		int count = group.replayDeadLetters();
+		startDelivery(group, group.dispatch());
+		return count;
+	}
 
-		// If the message queue contains the receiverID, fetch the ArrayList and
-		// insert messages to that ArrayList
-		if (msgqueue.containsKey(message.receiverID) == true) {
-			ArrayList<Message> getmsg = msgqueue.get(message.receiverID);
+	/**
+	 * Remove the Receivers whose lease expired and rebalance their groups. The
+	 * messages stay queued in the MessageLog from the committed offset on, so
+	 * no delivery waits for the timeout of a Receiver which is not running any
+	 * more.
+	 */
+	private synchronized void expireLeases() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, ConsumerGroup> entry : receiverlist.entrySet()) {
+			ConsumerGroup group = entry.getValue();
+			Iterator<ConsumerGroup.Member> iter = new ArrayList<ConsumerGroup.Member>(
+					group.members()).iterator();
+			while (iter.hasNext()) {
+				ConsumerGroup.Member member = iter.next();
+				if (member.leaseExpiration < now) {
+					group.leave(member, false);
+					System.out.println("Receiver " + entry.getKey()
+							+ " lease expired");
+					startDelivery(group, group.dispatch());
+				}
+			}
+		}
+	}
 
-			if (getmsg != null) {
-				for (int i = 0; i < getmsg.size(); i++) {
+	/**
+	 * Get the MessageLog of the given receiverID, creating it if needed. The
+	 * caller must hold the MQServer's lock.
+	 * 
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return The MessageLog of the receiverID.
+	 */
+	private MessageLog getLog(int receiverID) {
+		MessageLog log = msgqueue.get(receiverID);
+		if (log == null) {
+			log = new MessageLog();
+			msgqueue.put(receiverID, log);
+		}
+		return log;
+	}
 
-					recObj.getMessage(getmsg.get(i));
+	/**
+	 * Get the ConsumerGroup of the given receiverID, creating it if needed. The
+	 * caller must hold the MQServer's lock.
+	 * 
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return The ConsumerGroup of the receiverID.
+	 */
+	private ConsumerGroup getGroup(int receiverID) {
+		ConsumerGroup group = receiverlist.get(receiverID);
+		if (group == null) {
+			group = new ConsumerGroup(getLog(receiverID));
+			receiverlist.put(receiverID, group);
+		}
+		return group;
+	}
 
-					System.out.println("From " + getmsg.get(i).senderID
-							+ " to " + getmsg.get(i).receiverID + ": " + "\""
-							+ getmsg.get(i).messageText + "\"" + " delivered");
-					outgoingCount++;
-					// Report a ServerEvent to any remote event listeners.
-					eventGenerator.reportEvent(new ServerEvent(mqServerName,
-							incomingCount, outgoingCount));
+	/**
+	 * Start a delivery thread for each of the given members. The caller must
+	 * hold the MQServer's lock.
+	 * 
+	 * @param group
+	 *            The ConsumerGroup of the members
+	 * @param members
+	 *            The members returned by ConsumerGroup.dispatch()
+	 */
+	private void startDelivery(final ConsumerGroup group,
+			List<ConsumerGroup.Member> members) {
+		for (final ConsumerGroup.Member member : members) {
+			deliveryPool.execute(new Runnable() {
+				public void run() {
+					deliver(group, member);
+				}
+			});
+		}
+	}
 
+	/**
+	 * Deliver the messages assigned to a member of a ConsumerGroup, until it
+	 * has none left. The MQServer's lock is held while a message is taken, not
+	 * during the remote call. If the Receiver throws an exception for the
+	 * message, the message is delivered again until it is dead-lettered. RMI
+	 * passes a RuntimeException from the Receiver through unwrapped, other
+	 * exceptions and errors arrive as a ServerException or ServerError. If
+	 * the Receiver is lost it leaves the group and the group is rebalanced.
+	 * 
+	 * @param group
+	 *            The ConsumerGroup of the member
+	 * @param member
+	 *            The member to deliver to
+	 */
+	private void deliver(ConsumerGroup group, ConsumerGroup.Member member) {
+		for (;;) {
+			Message msg;
+			int generation;
+			synchronized (this) {
+				startDelivery(group, group.dispatch());
+				msg = group.take(member);
+				if (msg == null) {
+					return;
 				}
-				msgqueue.remove(message.receiverID);
+				generation = group.generation();
+			}
 
+			try {
+				member.ref.getMessage(msg);
+			} catch (ServerException e) {
+				// The Receiver is alive but failed on this message
+				messageFailed(group, member, msg, generation);
+				continue;
+			} catch (ServerError e) {
+				messageFailed(group, member, msg, generation);
+				continue;
+			} catch (RuntimeException e) {
+				// Thrown by the Receiver's getMessage, RMI does not wrap it
+				messageFailed(group, member, msg, generation);
+				continue;
+			} catch (Exception e) {
+				// Any other failure, including a MarshalException while the
+				// message is written, means the Receiver is lost. If it was
+				// lost while the call was under way (the reply could not be
+				// read) this message is charged, otherwise the oldest one it
+				// did not commit.
+				synchronized (this) {
+					group.leave(member, e instanceof UnmarshalException);
+					System.out.println("From " + msg.senderID + " to "
+							+ msg.receiverID + ": " + "\"" + msg.messageText
+							+ "\"" + " queued");
+					startDelivery(group, group.dispatch());
+				}
+				return;
 			}
 
+			synchronized (this) {
+				group.delivered(member, msg, generation);
+				outgoingCount++;
+				System.out.println("From " + msg.senderID + " to "
+						+ msg.receiverID + ": " + "\"" + msg.messageText
+						+ "\"" + " delivered");
+				// Report a ServerEvent to any remote event listeners.
+				eventGenerator.reportEvent(new ServerEvent(mqServerName,
+						incomingCount, outgoingCount));
+			}
 		}
+	}
+
+	/**
+	 * Record that the delivery of a message failed while the Receiver is
+	 * still alive.
+	 * 
+	 * @param group
+	 *            The ConsumerGroup of the member
+	 * @param member
+	 *            The member the message was delivered to
+	 * @param msg
+	 *            The message which failed
+	 * @param generation
+	 *            The generation of the group when the message was taken
+	 */
+	private synchronized void messageFailed(ConsumerGroup group,
+			ConsumerGroup.Member member, Message msg, int generation) {
+		System.out.println("From " + msg.senderID + " to " + msg.receiverID
+				+ ": " + "\"" + msg.messageText + "\"" + " failed");
+		group.failed(member, msg, generation);
+		startDelivery(group, group.dispatch());
+	}
+
+	/**
+	 * Take a snapshot of the queued messages. The MQServer's lock is held
+	 * while one receiverID is captured, not while the snapshot is written.
+	 */
+	private void takeSnapshot() {
+		synchronized (snapshotLock) {
+			try {
+				Snapshot snapshot = new Snapshot(snapshotDir);
+				ArrayList<Integer> receiverIDs;
+				synchronized (this) {
+					receiverIDs = new ArrayList<Integer>(msgqueue.keySet());
+				}
+				for (int receiverID : receiverIDs) {
+					snapshot.write(capture(receiverID));
+				}
+				snapshot.complete();
+			} catch (IOException e) {
+				System.err.println("Snapshot failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Capture the messages of a receiverID from the committed offset on and
+	 * its dead-letter queue. The messages are copied CAPTURE_CHUNK at a time,
+	 * and the lock is released between two chunks, so a large partition does
+	 * not hold up the Senders and the deliveries. Messages appended after
+	 * the capture started are left to the next snapshot.
+	 * 
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return The partition for the snapshot.
+	 */
+	private Snapshot.Partition capture(int receiverID) {
+		MessageLog log;
+		long end;
+		Snapshot.Partition partition = new Snapshot.Partition();
+		partition.receiverID = receiverID;
+		partition.messages = new ArrayList<Message>();
+		synchronized (this) {
+			log = getLog(receiverID);
+			partition.committedOffset = log.committedOffset();
+			end = log.endOffset();
+		}
+		int[] attempts = new int[(int) (end - partition.committedOffset)];
+		long next = partition.committedOffset;
+		for (;;) {
+			synchronized (this) {
+				// The messages committed since the last chunk may already be
+				// truncated, the copied ones are not needed any more
+				if (log.committedOffset() > next) {
+					partition.messages.clear();
+					partition.committedOffset = log.committedOffset();
+					next = partition.committedOffset;
+				}
+				long stop = Math.min(end, next + CAPTURE_CHUNK);
+				for (; next < stop; next++) {
+					Message message = log.get(next);
+					attempts[partition.messages.size()] = message.attempts;
+					partition.messages.add(message);
+				}
+				if (next >= end) {
+					// A message dead-lettered after its chunk was copied
+					// must be saved as dead-lettered, or it is delivered
+					// again after a restart
+					ConsumerGroup group = receiverlist.get(receiverID);
+					partition.deadLetters = group == null ? new ArrayList<Message>()
+							: group.deadLetters();
+					for (Message dead : partition.deadLetters) {
+						long index = dead.offset - partition.committedOffset;
+						if (index >= 0 && index < partition.messages.size()
+								&& partition.messages.get((int) index) == dead) {
+							attempts[(int) index] = dead.attempts;
+						}
+					}
+					break;
+				}
+			}
+		}
+		partition.attempts = Arrays.copyOf(attempts, partition.messages.size());
+		return partition;
+	}
 
+	/**
+	 * Load the latest snapshot from the snapshot directory into msgqueue and
+	 * receiverlist.
+	 * 
+	 * @exception IOException
+	 *                Thrown if the snapshot cannot be loaded.
+	 */
+	private void loadSnapshot() throws IOException {
+		long start = System.currentTimeMillis();
+		if (!snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+			System.out.println("Cannot create " + snapshotDir);
+			throw new IOException("Cannot create " + snapshotDir);
+		}
+		List<Snapshot.Partition> partitions;
+		try {
+			partitions = Snapshot.loadLatest(snapshotDir);
+		} catch (IOException e) {
+			System.out.println("Cannot load snapshot: " + e.getMessage());
+			throw e;
+		}
+		long count = 0;
+		synchronized (this) {
+			for (Snapshot.Partition partition : partitions) {
+				MessageLog log = new MessageLog(partition.committedOffset,
+						partition.messages.size());
+				for (Message message : partition.messages) {
+					log.append(message);
+				}
+				msgqueue.put(partition.receiverID, log);
+				receiverlist.put(partition.receiverID, new ConsumerGroup(log,
+						partition.deadLetters));
+				count += partition.messages.size();
+			}
+		}
+		System.out.println(count + " messages of " + partitions.size()
+				+ " receivers loaded in "
+				+ (System.currentTimeMillis() - start) + " ms");
 	}
 
 	/**
@@ -255,11 +682,13 @@ public class MQServer implements MQServerRef {
 	 */
 	private static void usage() {
 		System.err
-				.println("Usage: java Start MQServer <host> <port> <servername>");
+				.println("Usage: java Start MQServer <host> <port> <servername> [<snapshotdir>]");
 		System.err.println("<host> = Registry Server's host");
 		System.err
 				.println("<port> = Registry Server's port ( Must be an Integer )");
 		System.err.println("<servername> = MQServer's name");
+		System.err
+				.println("<snapshotdir> = Directory for snapshots of the queued messages");
 		System.exit(1);
 
 	}
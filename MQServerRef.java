@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import edu.rit.ds.Lease;
 import edu.rit.ds.RemoteEventListener;
@@ -38,6 +39,108 @@ public interface MQServerRef extends Remote {
 	public void messageReceiver(ReceiverRef RecObject, Message message)
 			throws RemoteException;
 
+	/**
+	 * This method is called by the Receiver to join the consumer group of a
+	 * receiverID, the messages of the receiverID are distributed among all
+	 * Receivers of the group
+	 * 
+	 * @param RecObject
+	 *            The Receiver's unicastRemote object
+	 * @param subscription
+	 *            The receiverID and the ordering of the group
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 * @exception IllegalArgumentException
+	 *                Thrown if the subscription conflicts with the other
+	 *                Receivers of the group.
+	 */
+	public void messageReceiver(ReceiverRef RecObject,
+			Subscription subscription) throws RemoteException;
+
+	/**
+	 * This method is called by the Receiver to commit the offset of the next
+	 * message it has not processed yet, the messages delivered to it before
+	 * that offset are not delivered again when the group is rebalanced
+	 * 
+	 * @param RecObject
+	 *            The Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * @param offset
+	 *            The offset of the next message the Receiver still needs
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void commitOffset(ReceiverRef RecObject, int receiverID,
+			long offset) throws RemoteException;
+
+	/**
+	 * This method is called by the Receiver when its handler failed on a
+	 * message. The failure counts against the message, which is delivered
+	 * again or, after too many failures, dead-lettered
+	 * 
+	 * @param RecObject
+	 *            The Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * @param offset
+	 *            The offset of the message which failed
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public void rejectMessage(ReceiverRef RecObject, int receiverID,
+			long offset) throws RemoteException;
+
+	/**
+	 * This method is called by the Receiver periodically to renew its lease.
+	 * A Receiver which does not renew its lease in time is removed and its
+	 * messages are queued
+	 * 
+	 * @param RecObject
+	 *            The Receiver's unicastRemote object
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return True if the lease is renewed, false if the Receiver has to call
+	 *         messageReceiver again.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public boolean heartbeat(ReceiverRef RecObject, int receiverID)
+			throws RemoteException;
+
+	/**
+	 * This method is called to inspect the dead-letter queue of a receiverID,
+	 * it holds the messages whose delivery failed too many times
+	 * 
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return The dead-lettered messages, in the order they failed.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public List<Message> deadLetters(int receiverID) throws RemoteException;
+
+	/**
+	 * This method is called to queue the dead-lettered messages of a
+	 * receiverID again, the dead-letter queue is emptied
+	 * 
+	 * @param receiverID
+	 *            The ID of the Receiver
+	 * 
+	 * @return The number of messages replayed.
+	 * 
+	 * @exception RemoteException
+	 *                Thrown if a remote error occurred.
+	 */
+	public int replayDeadLetters(int receiverID) throws RemoteException;
+
 	/**
 	 * Add the given remote event listener to the MQServer. Whenever a activity
 	 * is forwarded to this MQServer, this Server will report a ServerEvent to
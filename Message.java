@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.HashMap;
 
 /**
  * Class Message is used to create message objects
@@ -9,6 +10,13 @@ public class Message implements Serializable {
 	int senderID;
 	int receiverID;
 	String messageText;
+	// Position of the message in the receiver's MessageLog, given by the
+	// MQServer when the message is queued
+	long offset = -1;
+	// Number of failed deliveries of the message, counted by the MQServer
+	int attempts = 0;
+	// Header fields of the message, selectors match on them
+	HashMap<String, String> headers = new HashMap<String, String>();
 
 	/**
 	 * Constructor to set the SenderID, ReceiverID and the MessageText
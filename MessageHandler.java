@@ -0,0 +1,20 @@
+/**
+ * Interface MessageHandler specifies the processing of the messages received
+ * by a Receiver in the MQ system. The Receiver calls the handler from its
+ * worker threads, messages from the same senderID are handled in order by the
+ * same thread.
+ */
+public interface MessageHandler {
+	/**
+	 * This method is called by a worker thread of the Receiver for every
+	 * message received
+	 * 
+	 * @param message
+	 *            The message object contains SenderID, ReceiverID, messageText
+	 * 
+	 * @exception Exception
+	 *                Thrown if the message could not be processed.
+	 */
+	public void handle(Message message) throws Exception;
+
+}
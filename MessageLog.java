@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+
+/**
+ * Class MessageLog stores the messages addressed to one receiverID in the MQ
+ * system as an append-only sequence. Every appended message is given an
+ * offset, the Receiver commits the offset of the next message it still needs,
+ * and the storage behind the committed offset is truncated lazily.
+ * <P>
+ * A MessageLog is not synchronized, it is guarded by the MQServer's lock.
+ */
+public class MessageLog {
+	// Minimum number of committed messages before the storage is truncated
+	private static final int TRUNCATE_THRESHOLD = 1024;
+
+	// The retained messages, the first one has the offset baseOffset
+	private ArrayList<Message> entries = new ArrayList<Message>();
+	private long baseOffset = 0;
+	// Offset of the next message the Receiver has not processed yet
+	private long committedOffset = 0;
+	// Offset of the next message to deliver to the Receiver
+	private long deliveryOffset = 0;
+
+	/**
+	 * Construct a new, empty MessageLog object.
+	 */
+	public MessageLog() {
+	}
+
+	/**
+	 * Construct a MessageLog object whose first message gets the given
+	 * offset, for loading a snapshot.
+	 * 
+	 * @param offset
+	 *            The committed offset of the log.
+	 * @param capacity
+	 *            The number of messages which are going to be appended.
+	 */
+	public MessageLog(long offset, int capacity) {
+		baseOffset = offset;
+		committedOffset = offset;
+		deliveryOffset = offset;
+		entries.ensureCapacity(capacity);
+	}
+
+	/**
+	 * Append a message at the end of the log and set its offset.
+	 * 
+	 * @param message
+	 *            The message object contains SenderID, ReceiverID, messageText
+	 * 
+	 * @return The offset given to the message.
+	 */
+	public long append(Message message) {
+		message.offset = endOffset();
+		entries.add(message);
+		return message.offset;
+	}
+
+	/**
+	 * @return The next message to deliver, or null if every message is
+	 *         delivered.
+	 */
+	public Message peek() {
+		if (!hasUndelivered()) {
+			return null;
+		}
+		return entries.get((int) (deliveryOffset - baseOffset));
+	}
+
+	/**
+	 * Get the message with the given offset.
+	 * 
+	 * @param offset
+	 *            The offset of the message.
+	 * 
+	 * @return The message, or null if it is truncated or not appended yet.
+	 */
+	public Message get(long offset) {
+		if (offset < baseOffset || offset >= endOffset()) {
+			return null;
+		}
+		return entries.get((int) (offset - baseOffset));
+	}
+
+	/**
+	 * Take the next message to deliver and move the delivery offset past it.
+	 * 
+	 * @return The next message to deliver, or null if every message is
+	 *         delivered.
+	 */
+	public Message next() {
+		Message message = peek();
+		if (message != null) {
+			deliveryOffset++;
+		}
+		return message;
+	}
+
+	/**
+	 * Record that the Receiver has processed every message before the given
+	 * offset, and truncate the storage once enough of it is committed.
+	 * 
+	 * @param offset
+	 *            Offset of the next message the Receiver still needs.
+	 */
+	public void commit(long offset) {
+		if (offset <= committedOffset) {
+			return;
+		}
+		committedOffset = Math.min(offset, endOffset());
+		if (deliveryOffset < committedOffset) {
+			deliveryOffset = committedOffset;
+		}
+		int committed = (int) (committedOffset - baseOffset);
+		if (committed >= TRUNCATE_THRESHOLD && committed >= entries.size() / 2) {
+			entries.subList(0, committed).clear();
+			baseOffset = committedOffset;
+		}
+	}
+
+	/**
+	 * Move the delivery offset back to the committed offset, so the next
+	 * Receiver resumes from the first message that was not processed.
+	 */
+	public void rewind() {
+		deliveryOffset = committedOffset;
+	}
+
+	/**
+	 * @return True if there are messages which are not delivered yet.
+	 */
+	public boolean hasUndelivered() {
+		return deliveryOffset < endOffset();
+	}
+
+	/**
+	 * @return The offset the next appended message will get.
+	 */
+	public long endOffset() {
+		return baseOffset + entries.size();
+	}
+
+	/**
+	 * @return The offset of the next message to deliver.
+	 */
+	public long deliveryOffset() {
+		return deliveryOffset;
+	}
+
+	/**
+	 * @return The offset of the next message the Receiver has not processed.
+	 */
+	public long committedOffset() {
+		return committedOffset;
+	}
+
+}
@@ -0,0 +1,265 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class ProcessingEngine processes the messages of a Receiver in the MQ system
+ * on a fixed number of worker threads. Each worker has its own queue and the
+ * messages from one senderID always go to the same worker, so they are handled
+ * in order. A message is accepted as soon as it is in a worker's queue.
+ * <P>
+ * The engine also keeps track of the offsets which are accepted but not
+ * handled yet, to know which offset the Receiver may commit. A message whose
+ * handler throws an exception or an error stays uncommitted until the
+ * Receiver has reported the failure to the MQServer, see takeFailed(). A
+ * worker thread which dies anyway is replaced by the next accept().
+ */
+public class ProcessingEngine {
+	// Maximum number of messages waiting in one worker's queue
+	private static final int QUEUE_CAPACITY = 1000;
+	// Time in milliseconds accept() waits for a full queue before it checks
+	// the worker again
+	private static final long ACCEPT_TIMEOUT = 1000;
+
+	private MessageHandler handler;
+	private Worker[] workers;
+	// The messages accepted but not handled yet, by offset
+	private TreeMap<Long, Message> inFlight = new TreeMap<Long, Message>();
+	// The highest offset accepted
+	private long highestOffset = -1;
+	// Number of messages handled, a redelivered message counts again
+	private long completedCount = 0;
+	// Messages whose handler failed, not reported to the MQServer yet
+	private ArrayList<Message> failed = new ArrayList<Message>();
+	// Time of the last statistics report
+	private long lastReport = System.currentTimeMillis();
+
+	/**
+	 * Class Worker is a worker thread handling the messages in its queue.
+	 */
+	private class Worker extends Thread {
+		BlockingQueue<Message> queue;
+		// The message being handled, or null
+		volatile Message current;
+		// Number of messages handled, and the number at the last report
+		volatile long handled = 0;
+		long reported = 0;
+
+		Worker(int index, BlockingQueue<Message> queue) {
+			super("Worker " + index);
+			this.queue = queue;
+			setDaemon(true);
+		}
+
+		public void run() {
+			for (;;) {
+				Message message;
+				try {
+					message = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				current = message;
+				handled++;
+				try {
+					handler.handle(message);
+				} catch (Throwable e) {
+					// Errors too, a StackOverflowError must not kill the
+					// worker and leave its queue without a consumer
+					System.err.println("From " + message.senderID + ": \""
+							+ message.messageText + "\" failed: " + e);
+					failed(message);
+					current = null;
+					continue;
+				}
+				completed(message);
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Construct a new ProcessingEngine object and start its workers.
+	 * 
+	 * @param handler
+	 *            The handler called for every message.
+	 * @param workerCount
+	 *            The number of worker threads.
+	 */
+	public ProcessingEngine(MessageHandler handler, int workerCount) {
+		this.handler = handler;
+		workers = new Worker[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = new Worker(i, new ArrayBlockingQueue<Message>(
+					QUEUE_CAPACITY));
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Accept a message into the queue of the worker for its senderID. Blocks
+	 * while that queue is full, and replaces the worker if it died. A message
+	 * whose offset is still being processed is ignored.
+	 * 
+	 * @param message
+	 *            The message object contains SenderID, ReceiverID, messageText
+	 * 
+	 * @exception InterruptedException
+	 *                Thrown if the thread is interrupted while waiting.
+	 */
+	public void accept(Message message) throws InterruptedException {
+		synchronized (this) {
+			if (inFlight.containsKey(message.offset)) {
+				return;
+			}
+			inFlight.put(message.offset, message);
+			if (message.offset > highestOffset) {
+				highestOffset = message.offset;
+			}
+		}
+		int index = Math.abs(message.senderID % workers.length);
+		while (!worker(index).queue.offer(message, ACCEPT_TIMEOUT,
+				TimeUnit.MILLISECONDS)) {
+			// The queue is still full, check that its worker is alive
+		}
+	}
+
+	/**
+	 * Return the worker with the given index, after replacing it by a new
+	 * worker on the same queue if it died. The message it died on counts as
+	 * failed.
+	 */
+	private synchronized Worker worker(int index) {
+		Worker worker = workers[index];
+		if (worker.isAlive()) {
+			return worker;
+		}
+		System.err.println(worker.getName() + " died, starting it again");
+		if (worker.current != null) {
+			failed(worker.current);
+		}
+		Worker replacement = new Worker(index, worker.queue);
+		replacement.handled = worker.handled;
+		replacement.reported = worker.reported;
+		workers[index] = replacement;
+		replacement.start();
+		return replacement;
+	}
+
+	/**
+	 * Record that a message is handled. A message accepted before reset() no
+	 * longer holds its offset.
+	 * 
+	 * @param message
+	 *            The message which is handled.
+	 */
+	private synchronized void completed(Message message) {
+		if (inFlight.get(message.offset) == message) {
+			inFlight.remove(message.offset);
+		}
+		completedCount++;
+	}
+
+	/**
+	 * Record that the handler failed on a message. Its offset stays in flight
+	 * so it is not committed.
+	 * 
+	 * @param message
+	 *            The message which failed.
+	 */
+	private synchronized void failed(Message message) {
+		if (inFlight.get(message.offset) == message) {
+			failed.add(message);
+		}
+	}
+
+	/**
+	 * Take the messages whose handler failed, to report them to the MQServer.
+	 * Their offsets are no longer in flight, so the MQServer can deliver them
+	 * again. The caller must report them before it commits again, and give
+	 * back the ones it could not report with retryFailed().
+	 * 
+	 * @return The failed messages.
+	 */
+	public synchronized List<Message> takeFailed() {
+		List<Message> taken = failed;
+		failed = new ArrayList<Message>();
+		for (Message message : taken) {
+			inFlight.remove(message.offset);
+			completedCount++;
+		}
+		return taken;
+	}
+
+	/**
+	 * Give back a failed message which could not be reported to the
+	 * MQServer.
+	 * 
+	 * @param message
+	 *            The message which failed.
+	 */
+	public synchronized void retryFailed(Message message) {
+		inFlight.put(message.offset, message);
+		failed.add(message);
+	}
+
+	/**
+	 * Forget the offsets of the messages accepted so far, when the Receiver
+	 * connects to a new MQServer whose offsets have nothing to do with the
+	 * old ones. The messages still queued are handled, but no longer hold
+	 * back the committable offset.
+	 */
+	public synchronized void reset() {
+		inFlight.clear();
+		failed.clear();
+		highestOffset = -1;
+	}
+
+	/**
+	 * @return The number of messages handled so far.
+	 */
+	public synchronized long completedCount() {
+		return completedCount;
+	}
+
+	/**
+	 * @return The offset of the next message which is not handled yet, every
+	 *         accepted message before it is handled.
+	 */
+	public synchronized long committableOffset() {
+		if (inFlight.isEmpty()) {
+			return highestOffset + 1;
+		}
+		return inFlight.firstKey();
+	}
+
+	/**
+	 * Print the throughput and the queue depth of every worker since the last
+	 * report, nothing is printed if the workers were idle.
+	 */
+	public void printStats() {
+		boolean idle = true;
+		for (Worker worker : workers) {
+			if (worker.handled != worker.reported || !worker.queue.isEmpty()) {
+				idle = false;
+			}
+		}
+		if (idle) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(now - lastReport, 1) / 1000.0;
+		lastReport = now;
+		for (int i = 0; i < workers.length; i++) {
+			long handled = workers[i].handled;
+			System.out.printf("Worker %d: %.1f msg/s, queue depth %d%n", i,
+					(handled - workers[i].reported) / seconds,
+					workers[i].queue.size());
+			workers[i].reported = handled;
+		}
+	}
+
+}
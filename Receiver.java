@@ -1,6 +1,8 @@
 import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import edu.rit.ds.registry.NotBoundException;
 import edu.rit.ds.registry.RegistryProxy;
@@ -10,11 +12,18 @@ import edu.rit.ds.registry.RegistryProxy;
  * system.
  * <P>
  * Usage: java Start Receiver <I>host</I> <I>port</I>
- * <I>serverName</I><I>receiverID</I><BR>
+ * <I>serverName</I><I>receiverID</I> [ordered] ["<I>selector</I>"]<BR>
  * <I>host</I> = Registry Server's host <BR>
  * <I>port</I> = Registry Server's port <BR>
  * <I>serverName</I> = MQServer's name <BR>
  * <I>receiverID</I> = The ID of the receiverID <BR>
+ * ordered = Messages from the same senderID go to the same Receiver of the
+ * group <BR>
+ * <I>selector</I> = Only the messages matching the selector are delivered,
+ * see class Selector <BR>
+ * <P>
+ * Any number of Receivers may run with the same receiverID, they share its
+ * messages as a consumer group.
  */
 
 public class Receiver implements ReceiverRef {
@@ -26,6 +35,41 @@ public class Receiver implements ReceiverRef {
 	public int receiverID;
 	public String messagetext;
 
+	// Interval in milliseconds between two offset commits
+	private static final long COMMIT_INTERVAL = 1000;
+
+	// Interval in milliseconds between two heartbeats, well below the
+	// MQServer's lease duration
+	private static final long HEARTBEAT_INTERVAL = 3000;
+
+	// Interval in milliseconds between two worker statistics reports
+	private static final long STATS_INTERVAL = 5000;
+
+	// Number of worker threads processing the messages
+	private static final int WORKERS = Runtime.getRuntime()
+			.availableProcessors();
+
+	// The default handler prints every message
+	private static final MessageHandler PRINT_HANDLER = new MessageHandler() {
+		public void handle(Message message) {
+			System.out.println("From " + message.senderID + ": " + "\""
+					+ message.messageText + "\"");
+		}
+	};
+
+	// The MQServer this Receiver is connected to
+	private volatile MQServerRef server;
+	// The exported remote object of this Receiver
+	private ReceiverRef stub;
+	// The consumer group this Receiver joins
+	private Subscription subscription;
+	// The worker threads processing the messages
+	private ProcessingEngine engine;
+	// The offset last committed to the MQServer
+	private long committedOffset = 0;
+	// The number of messages handled at the last commit
+	private long committedCount = 0;
+
 	public Receiver() {
 
 	}
@@ -38,6 +82,8 @@ public class Receiver implements ReceiverRef {
 	 * <TT>args[1]</TT> = Registry Server's port <BR>
 	 * <TT>args[2]</TT> = Name of the MQServer to connect<BR>
 	 * <TT>args[3]</TT> = ID of the Receiver<BR>
+	 * <TT>args[4]</TT> = "ordered" (optional)<BR>
+	 * <TT>args[4]</TT> or <TT>args[5]</TT> = Selector (optional)<BR>
 	 * 
 	 * @param args
 	 *            Command line arguments.
@@ -48,9 +94,28 @@ public class Receiver implements ReceiverRef {
 	 *                Thrown if an I/O error or a remote error occurred.
 	 */
 	public Receiver(String[] args) throws IOException, NotBoundException {
+		this(args, PRINT_HANDLER);
+	}
+
+	/**
+	 * Construct a new Receiver object which processes the messages with the
+	 * given handler.
+	 * 
+	 * @param args
+	 *            Command line arguments, see Receiver(String[]).
+	 * @param handler
+	 *            The handler called by the worker threads for every message.
+	 * 
+	 * @exception NotBoundException
+	 *                Thrown if the MQServer is not found.
+	 * @exception IOException
+	 *                Thrown if an I/O error or a remote error occurred.
+	 */
+	public Receiver(String[] args, MessageHandler handler) throws IOException,
+			NotBoundException {
 		try {
 			// Parse command line arguments.
-			if (args.length != 4) {
+			if (args.length < 4 || args.length > 6) {
 				System.err.println("Invalid Number of Arguments");
 				throw new IllegalArgumentException(
 						"Usage: java Start Receiver <host> <port> <ServerName>");
@@ -59,6 +124,28 @@ public class Receiver implements ReceiverRef {
 			port = parseInt(args[1], "port");
 			servername = args[2];
 			receiverID = parseInt(args[3], "receiverID");
+			boolean ordered = false;
+			String selector = null;
+			for (int i = 4; i < args.length; i++) {
+				if (args[i].equals("ordered") && !ordered) {
+					ordered = true;
+				} else if (selector == null) {
+					selector = args[i];
+					// Check the selector before connecting
+					try {
+						Selector.compile(selector);
+					} catch (IllegalArgumentException e) {
+						System.err.println(e.getMessage());
+						throw e;
+					}
+				} else {
+					System.err.println("Invalid Number of Arguments");
+					throw new IllegalArgumentException(
+							"Usage: java Start Receiver <host> <port> <ServerName>");
+				}
+			}
+			subscription = new Subscription(receiverID, ordered, selector);
+			engine = new ProcessingEngine(handler, WORKERS);
 			try {
 				// Look up MQserver name in the Registry Server and receive the
 				// message.
@@ -66,13 +153,37 @@ public class Receiver implements ReceiverRef {
 				try {
 					MQServerRef msgObj = (MQServerRef) registry
 							.lookup(servername);
+					server = msgObj;
 
 					ReceiverRef recMsgObj = (ReceiverRef) UnicastRemoteObject
-							.exportObject(new Receiver(), 0);
-					// we only have to send the receiverID here, hence senderID
-					// = -1 and message is blank
-					Message messageObj = new Message(-1, receiverID, "");
-					msgObj.messageReceiver(recMsgObj, messageObj);
+							.exportObject(this, 0);
+					stub = recMsgObj;
+					// Commit the offset of the processed messages periodically
+					Timer timer = new Timer(true);
+					timer.schedule(new TimerTask() {
+						public void run() {
+							commitOffset();
+						}
+					}, COMMIT_INTERVAL, COMMIT_INTERVAL);
+					// Renew the lease on a thread of its own, so a slow
+					// commit or a reconnect does not hold up the other
+					new Timer(true).schedule(new TimerTask() {
+						public void run() {
+							heartbeat();
+						}
+					}, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
+					timer.schedule(new TimerTask() {
+						public void run() {
+							engine.printStats();
+						}
+					}, STATS_INTERVAL, STATS_INTERVAL);
+					try {
+						msgObj.messageReceiver(recMsgObj, subscription);
+					} catch (IllegalArgumentException e) {
+						// The MQServer rejected the subscription
+						System.err.println(e.getMessage());
+						throw e;
+					}
 				} catch (NotBoundException e) {
 					System.err.println("Server Not found");
 					System.out.println("");
@@ -92,7 +203,8 @@ public class Receiver implements ReceiverRef {
 	}
 
 	/**
-	 * This method is called by MQserver to forward the messages
+	 * This method is called by MQserver to forward the messages, it returns as
+	 * soon as the message is accepted by a worker thread
 	 * 
 	 * @param message
 	 *            The message object contains SenderID, ReceiverID, messageText
@@ -103,10 +215,87 @@ public class Receiver implements ReceiverRef {
 	 *                Thrown if a remote error occurred.
 	 */
 	public void getMessage(Message message) throws RemoteException {
+		try {
+			engine.accept(message);
+		} catch (InterruptedException e) {
+			throw new RemoteException("Receiver interrupted", e);
+		}
+	}
 
-		System.out.println("From " + message.senderID + ": " + "\""
-				+ message.messageText + "\"");
+	/**
+	 * Renew the lease with the MQServer, and connect again if the lease
+	 * expired. If the MQServer cannot be reached, it is looked up again in
+	 * the Registry Server, to connect to it once it is restarted.
+	 */
+	private void heartbeat() {
+		try {
+			if (!server.heartbeat(stub, receiverID)) {
+				System.err.println("Lease expired, connecting again");
+				server.messageReceiver(stub, subscription);
+			}
+		} catch (RemoteException e) {
+			System.err.println("Heartbeat failed");
+			reconnect();
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Look up the MQServer in the Registry Server again, and join its group
+	 * if it is a new MQServer. The offsets of the old MQServer are forgotten,
+	 * the new one delivers its uncommitted messages from its own offsets.
+	 * Nothing is done if the MQServer is not bound yet, the next heartbeat
+	 * tries again.
+	 */
+	private void reconnect() {
+		try {
+			RegistryProxy registry = new RegistryProxy(host, port);
+			MQServerRef msgObj = (MQServerRef) registry.lookup(servername);
+			if (msgObj.equals(server)) {
+				return;
+			}
+			engine.reset();
+			server = msgObj;
+			msgObj.messageReceiver(stub, subscription);
+			System.err.println("Connected to " + servername + " again");
+		} catch (NotBoundException e) {
+			System.err.println("Server Not found");
+		} catch (RemoteException e) {
+			System.err.println("Registry Not found");
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+		}
+	}
 
+	/**
+	 * Commit the offset of the next unprocessed message to the MQServer, if
+	 * it changed or messages were handled since the last commit. Messages
+	 * delivered again after a rebalance lie below the offset, they have to be
+	 * committed even though the offset stays the same. The messages whose
+	 * handler failed are reported first, so they count as failed deliveries
+	 * and are delivered again instead of being committed.
+	 */
+	private void commitOffset() {
+		for (Message message : engine.takeFailed()) {
+			try {
+				server.rejectMessage(stub, receiverID, message.offset);
+			} catch (RemoteException e) {
+				engine.retryFailed(message);
+			}
+		}
+		long count = engine.completedCount();
+		long offset = engine.committableOffset();
+		if (offset == committedOffset && count == committedCount) {
+			return;
+		}
+		try {
+			server.commitOffset(stub, receiverID, offset);
+			committedOffset = offset;
+			committedCount = count;
+		} catch (RemoteException e) {
+			System.err.println("Offset commit failed");
+		}
 	}
 
 	/**
@@ -114,12 +303,16 @@ public class Receiver implements ReceiverRef {
 	 */
 	private static void usage() {
 		System.err
-				.println("Usage: java Start Receiver <host> <port> <servername> <receiverID>");
+				.println("Usage: java Start Receiver <host> <port> <servername> <receiverID> [ordered] [\"<selector>\"]");
 		System.err.println("<host> = Registry Server's host");
 		System.err.println("<port> = Registry Server's port");
 		System.err.println("<servername> = MQServer's name");
 		System.err
 				.println("<receiverID> = ID of the Receiver ( Must be an Integer )");
+		System.err
+				.println("ordered = Messages from the same senderID go to the same Receiver");
+		System.err
+				.println("<selector> = Deliver only the matching messages, e.g. \"senderID = 3 AND type = 'alert'\"");
 		System.exit(1);
 
 	}
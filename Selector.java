@@ -0,0 +1,402 @@
+import java.util.ArrayList;
+
+/**
+ * Class Selector is a compiled predicate over the senderID and the header
+ * fields of a message in the MQ system. A Receiver registers a selector with
+ * its Subscription and the MQServer delivers only the matching messages.
+ * <P>
+ * Grammar: <BR>
+ * <I>selector</I> = <I>and</I> { OR <I>and</I> } <BR>
+ * <I>and</I> = <I>not</I> { AND <I>not</I> } <BR>
+ * <I>not</I> = NOT <I>not</I> | ( <I>selector</I> ) | <I>field</I>
+ * <I>op</I> <I>value</I> <BR>
+ * <I>field</I> = senderID | <I>header name</I> <BR>
+ * <I>op</I> = = | != | &lt; | &lt;= | &gt; | &gt;= <BR>
+ * <I>value</I> = <I>integer</I> | '<I>text</I>'
+ * <P>
+ * For example: <TT>senderID = 3 OR (type = 'alert' AND priority &gt;= 5)</TT>
+ * <P>
+ * An integer value compares the field numerically, a header which is missing
+ * or not an integer does not match, a header beyond the range of a long
+ * compares as greater or less than every value. A text value compares the
+ * field as text, the senderID can only be compared with an integer. Matching
+ * a message allocates no objects.
+ * <P>
+ * Two selectors are equal if they are the same predicate, however they are
+ * spaced and whatever the case of their keywords.
+ */
+public class Selector {
+	// Comparison operators, and how they are written
+	private static final int EQ = 0;
+	private static final int NE = 1;
+	private static final int LT = 2;
+	private static final int LE = 3;
+	private static final int GT = 4;
+	private static final int GE = 5;
+	private static final String[] OPERATORS = { "=", "!=", "<", "<=", ">",
+			">=" };
+
+	private String text;
+	private Node root;
+	// The compiled predicate written out in one fixed way, for equals()
+	private String normalized;
+	// Tokens of the selector text, used while compiling only
+	private ArrayList<String> tokens;
+	private int pos;
+
+	/**
+	 * Compile the given selector text.
+	 * 
+	 * @param text
+	 *            The selector text.
+	 * 
+	 * @return The compiled selector.
+	 * 
+	 * @exception IllegalArgumentException
+	 *                Thrown if the text is not a valid selector.
+	 */
+	public static Selector compile(String text) {
+		Selector selector = new Selector(text);
+		selector.tokens = tokenize(text);
+		selector.pos = 0;
+		selector.root = selector.parseOr();
+		if (selector.pos < selector.tokens.size()) {
+			throw selector.error("unexpected \""
+					+ selector.tokens.get(selector.pos) + "\"");
+		}
+		selector.tokens = null;
+		StringBuilder normalized = new StringBuilder();
+		selector.root.write(normalized);
+		selector.normalized = normalized.toString();
+		return selector;
+	}
+
+	private Selector(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Determine whether a message matches this selector.
+	 * 
+	 * @param message
+	 *            The message object contains SenderID, ReceiverID, messageText
+	 * 
+	 * @return True if the message matches.
+	 */
+	public boolean matches(Message message) {
+		return root.matches(message);
+	}
+
+	public String toString() {
+		return text;
+	}
+
+	public boolean equals(Object obj) {
+		return obj instanceof Selector
+				&& normalized.equals(((Selector) obj).normalized);
+	}
+
+	public int hashCode() {
+		return normalized.hashCode();
+	}
+
+	/**
+	 * Class Node is a node of the compiled selector.
+	 */
+	private static abstract class Node {
+		abstract boolean matches(Message message);
+
+		// Write the node with every operation in parentheses
+		abstract void write(StringBuilder out);
+	}
+
+	private static class Or extends Node {
+		Node left, right;
+
+		Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean matches(Message message) {
+			return left.matches(message) || right.matches(message);
+		}
+
+		void write(StringBuilder out) {
+			out.append('(');
+			left.write(out);
+			out.append(" OR ");
+			right.write(out);
+			out.append(')');
+		}
+	}
+
+	private static class And extends Node {
+		Node left, right;
+
+		And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		boolean matches(Message message) {
+			return left.matches(message) && right.matches(message);
+		}
+
+		void write(StringBuilder out) {
+			out.append('(');
+			left.write(out);
+			out.append(" AND ");
+			right.write(out);
+			out.append(')');
+		}
+	}
+
+	private static class Not extends Node {
+		Node operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		boolean matches(Message message) {
+			return !operand.matches(message);
+		}
+
+		void write(StringBuilder out) {
+			out.append("(NOT ");
+			operand.write(out);
+			out.append(')');
+		}
+	}
+
+	/**
+	 * Class Compare compares a field of the message with a value.
+	 */
+	private static class Compare extends Node {
+		// Header name, or null for the senderID
+		String header;
+		int op;
+		// The value, number is used if text is null
+		long number;
+		String text;
+
+		boolean matches(Message message) {
+			if (header == null) {
+				return test(compare(message.senderID, number));
+			}
+			String value = message.headers.get(header);
+			if (value == null) {
+				return false;
+			}
+			if (text != null) {
+				return test(value.compareTo(text));
+			}
+			// Parse the header without allocating, as a negative number so
+			// Long.MIN_VALUE fits, like Long.parseLong
+			int length = value.length();
+			int i = 0;
+			boolean negative = false;
+			if (length > 0 && value.charAt(0) == '-') {
+				negative = true;
+				i = 1;
+			}
+			if (i == length) {
+				return false;
+			}
+			long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+			long n = 0;
+			boolean overflow = false;
+			for (; i < length; i++) {
+				char c = value.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+				int digit = c - '0';
+				if (overflow || n < limit / 10 || n * 10 < limit + digit) {
+					overflow = true;
+				} else {
+					n = n * 10 - digit;
+				}
+			}
+			if (overflow) {
+				// Beyond every long value
+				return test(negative ? -1 : 1);
+			}
+			return test(compare(negative ? n : -n, number));
+		}
+
+		void write(StringBuilder out) {
+			out.append(header == null ? "senderID" : header);
+			out.append(' ').append(OPERATORS[op]).append(' ');
+			if (text != null) {
+				out.append('\'').append(text).append('\'');
+			} else {
+				out.append(number);
+			}
+		}
+
+		private static int compare(long a, long b) {
+			return a < b ? -1 : (a == b ? 0 : 1);
+		}
+
+		private boolean test(int cmp) {
+			switch (op) {
+			case EQ:
+				return cmp == 0;
+			case NE:
+				return cmp != 0;
+			case LT:
+				return cmp < 0;
+			case LE:
+				return cmp <= 0;
+			case GT:
+				return cmp > 0;
+			default:
+				return cmp >= 0;
+			}
+		}
+	}
+
+	private Node parseOr() {
+		Node node = parseAnd();
+		while (accept("OR")) {
+			node = new Or(node, parseAnd());
+		}
+		return node;
+	}
+
+	private Node parseAnd() {
+		Node node = parseNot();
+		while (accept("AND")) {
+			node = new And(node, parseNot());
+		}
+		return node;
+	}
+
+	private Node parseNot() {
+		if (accept("NOT")) {
+			return new Not(parseNot());
+		}
+		if (accept("(")) {
+			Node node = parseOr();
+			if (!accept(")")) {
+				throw error("missing \")\"");
+			}
+			return node;
+		}
+		return parseCompare();
+	}
+
+	private Node parseCompare() {
+		Compare node = new Compare();
+		String field = next("field name");
+		if (!Character.isJavaIdentifierStart(field.charAt(0))) {
+			throw error("invalid field name \"" + field + "\"");
+		}
+		node.header = field.equals("senderID") ? null : field;
+
+		String op = next("operator");
+		if (op.equals("=")) {
+			node.op = EQ;
+		} else if (op.equals("!=")) {
+			node.op = NE;
+		} else if (op.equals("<")) {
+			node.op = LT;
+		} else if (op.equals("<=")) {
+			node.op = LE;
+		} else if (op.equals(">")) {
+			node.op = GT;
+		} else if (op.equals(">=")) {
+			node.op = GE;
+		} else {
+			throw error("invalid operator \"" + op + "\"");
+		}
+
+		String value = next("value");
+		if (value.charAt(0) == '\'') {
+			if (node.header == null) {
+				throw error("senderID compared with text " + value);
+			}
+			node.text = value.substring(1, value.length() - 1);
+		} else {
+			try {
+				node.number = Long.parseLong(value);
+			} catch (NumberFormatException exc) {
+				throw error("invalid value \"" + value + "\"");
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Skip the next token if it is the given keyword or symbol.
+	 */
+	private boolean accept(String token) {
+		if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(token)) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the next token, it is an error if there is none.
+	 */
+	private String next(String expected) {
+		if (pos == tokens.size()) {
+			throw error(expected + " expected");
+		}
+		return tokens.get(pos++);
+	}
+
+	private IllegalArgumentException error(String reason) {
+		return new IllegalArgumentException("Selector: Invalid <selector>: \""
+				+ text + "\": " + reason);
+	}
+
+	/**
+	 * Split the selector text into tokens: names, integers, quoted texts,
+	 * parentheses and operators.
+	 */
+	private static ArrayList<String> tokenize(String text) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			int start = i;
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			} else if (c == '(' || c == ')' || c == '=') {
+				i++;
+			} else if (c == '<' || c == '>' || c == '!') {
+				i++;
+				if (i < text.length() && text.charAt(i) == '=') {
+					i++;
+				}
+			} else if (c == '\'') {
+				i = text.indexOf('\'', i + 1) + 1;
+				if (i == 0) {
+					throw new IllegalArgumentException(
+							"Selector: Invalid <selector>: \"" + text
+									+ "\": missing \"'\"");
+				}
+			} else {
+				while (i < text.length()
+						&& (Character.isLetterOrDigit(text.charAt(i))
+								|| text.charAt(i) == '_' || text.charAt(i) == '-')) {
+					i++;
+				}
+				if (i == start) {
+					throw new IllegalArgumentException(
+							"Selector: Invalid <selector>: \"" + text
+									+ "\": unexpected \"" + c + "\"");
+				}
+			}
+			tokens.add(text.substring(start, i));
+		}
+		return tokens;
+	}
+
+}
@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.rmi.RemoteException;
+import java.util.HashMap;
 
 import edu.rit.ds.registry.NotBoundException;
 import edu.rit.ds.registry.RegistryProxy;
@@ -12,13 +13,15 @@ import edu.rit.ds.registry.RegistryProxy;
  * Class Sender has the main program for sending message to the MQserver.
  * <P>
  * Usage: java Sender <I>host</I> <I>port</I>
- * <I>serverName</I><I>senderID</I><I>receiverID</I> "<I>messageText</I>" <BR>
+ * <I>serverName</I><I>senderID</I><I>receiverID</I> "<I>messageText</I>"
+ * [<I>name</I>=<I>value</I> ...] <BR>
  * <I>host</I> = Registry Server's host <BR>
  * <I>port</I> = Registry Server's port <BR>
  * <I>serverName</I> = MQServer's name <BR>
  * <I>senderID</I> = ID of the sender <BR>
  * <I>receiverID</I> = ID of the receiver <BR>
- * <I>messageText</I> = Message to be sent
+ * <I>messageText</I> = Message to be sent <BR>
+ * <I>name</I>=<I>value</I> = Header fields of the message (optional)
  */
 public class Sender implements Serializable {
 	// Default constructor
@@ -40,7 +43,7 @@ public class Sender implements Serializable {
 	public static void main(String[] args) throws Exception {
 		try {
 			// Parse command line arguments.
-			if (args.length != 6) {
+			if (args.length < 6) {
 				usage();
 			}
 			String host = args[0];
@@ -49,6 +52,16 @@ public class Sender implements Serializable {
 			int senderID = parseInt(args[3], "senderID");
 			int receiverID = parseInt(args[4], "receiverID");
 			String messageText = args[5];
+			HashMap<String, String> headers = new HashMap<String, String>();
+			for (int i = 6; i < args.length; i++) {
+				int eq = args[i].indexOf('=');
+				if (eq <= 0) {
+					System.err.println("Sender: Invalid <header>: \"" + args[i]
+							+ "\"");
+					usage();
+				}
+				headers.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+			}
 
 			try {
 				// Look up serverName in the Registry server and send the
@@ -64,6 +77,7 @@ public class Sender implements Serializable {
 
 					Message messageTosend = new Message(senderID, receiverID,
 							messageText);
+					messageTosend.headers = headers;
 					// String messageTosend = (senderID + " " + receiverID + " "
 					// + messageText);
 
@@ -90,7 +104,7 @@ public class Sender implements Serializable {
 	 */
 	private static void usage() {
 		System.err
-				.println("Usage: java Sender <host> <port> <servername> <senderID> <receiverID> \"<message>\"");
+				.println("Usage: java Sender <host> <port> <servername> <senderID> <receiverID> \"<message>\" [<name>=<value> ...]");
 		System.err.println("<host> = Registry Server's host");
 		System.err.println("<port> = Registry Server's port");
 		System.err.println("<servername> = MQServer's name");
@@ -99,6 +113,8 @@ public class Sender implements Serializable {
 		System.err
 				.println("<receiverID> = ID of the Receiver ( Must be an Integer )");
 		System.err.println("<message> = The message to send");
+		System.err
+				.println("<name>=<value> = Header field of the message, for selectors");
 		System.exit(1);
 	}
 
@@ -0,0 +1,357 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class Snapshot writes and loads point-in-time copies of a MQServer's queued
+ * messages in the MQ system. A snapshot is a directory with one binary file
+ * per receiverID partition, holding the messages from the committed offset on
+ * and the dead-letter queue. A COMPLETE file is written last, a snapshot
+ * without it is ignored. The files are synced to the disk before the COMPLETE
+ * file is written, and the previous complete snapshot is kept, to load it if
+ * the latest one cannot be loaded.
+ * <P>
+ * The MQServer captures one partition at a time, holding its lock for a
+ * bounded chunk of messages at a time, and the partition is written without
+ * the lock, so traffic is not stopped while the snapshot is taken.
+ */
+public class Snapshot {
+	// Marks the start of every partition file
+	private static final int MAGIC = 0x4D515331;
+	private static final String PREFIX = "snapshot-";
+	private static final String COMPLETE = "COMPLETE";
+
+	private File parent;
+	private File dir;
+
+	/**
+	 * Class Partition holds the state of one receiverID.
+	 */
+	public static class Partition {
+		public int receiverID;
+		// Offset of the first message
+		public long committedOffset;
+		public List<Message> messages;
+		// The failed deliveries of the messages, captured with them
+		public int[] attempts;
+		public List<Message> deadLetters;
+	}
+
+	/**
+	 * Start a new snapshot in the given directory. Snapshots are numbered in
+	 * sequence, the new one gets the highest number in the directory plus
+	 * one, so the order does not depend on the clock.
+	 * 
+	 * @param parent
+	 *            The directory holding the snapshots.
+	 * 
+	 * @exception IOException
+	 *                Thrown if the snapshot directory cannot be created.
+	 */
+	public Snapshot(File parent) throws IOException {
+		this.parent = parent;
+		long highest = 0;
+		File[] files = parent.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(PREFIX)) {
+					highest = Math.max(highest, sequence(file));
+				}
+			}
+		}
+		dir = new File(parent, PREFIX + (highest + 1));
+		if (!dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+	}
+
+	/**
+	 * Write a partition to the snapshot.
+	 * 
+	 * @param partition
+	 *            The partition captured from the MQServer.
+	 * 
+	 * @exception IOException
+	 *                Thrown if an I/O error occurred.
+	 */
+	public void write(Partition partition) throws IOException {
+		FileOutputStream file = new FileOutputStream(new File(dir,
+				"partition-" + partition.receiverID + ".bin"));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				file, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(partition.receiverID);
+			out.writeLong(partition.committedOffset);
+			out.writeInt(partition.messages.size());
+			for (int i = 0; i < partition.messages.size(); i++) {
+				writeMessage(out, partition.messages.get(i),
+						partition.attempts[i]);
+			}
+			out.writeInt(partition.deadLetters.size());
+			for (Message message : partition.deadLetters) {
+				writeMessage(out, message, message.attempts);
+			}
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Mark the snapshot as complete and delete the older snapshots, except
+	 * the previous complete one.
+	 * 
+	 * @exception IOException
+	 *                Thrown if an I/O error occurred.
+	 */
+	public void complete() throws IOException {
+		// The partition files must be on the disk before the marker
+		sync(dir);
+		FileOutputStream marker = new FileOutputStream(new File(dir, COMPLETE));
+		try {
+			marker.getFD().sync();
+		} finally {
+			marker.close();
+		}
+		sync(dir);
+		sync(parent);
+
+		File previous = null;
+		for (File snapshot : completeSnapshots(parent)) {
+			if (!snapshot.equals(dir)) {
+				previous = snapshot;
+				break;
+			}
+		}
+		for (File old : parent.listFiles()) {
+			if (old.getName().startsWith(PREFIX) && !old.equals(dir)
+					&& !old.equals(previous)) {
+				delete(old);
+			}
+		}
+	}
+
+	/**
+	 * Load the latest complete snapshot in the given directory. If it cannot
+	 * be loaded, the previous complete snapshot is loaded, and the snapshots
+	 * which failed are no longer marked as complete, so the next snapshot
+	 * keeps the loaded one and deletes them.
+	 * 
+	 * @param parent
+	 *            The directory holding the snapshots.
+	 * 
+	 * @return The partitions, none if there is no complete snapshot.
+	 * 
+	 * @exception IOException
+	 *                Thrown if no complete snapshot can be loaded.
+	 */
+	public static List<Partition> loadLatest(File parent) throws IOException {
+		IOException failure = null;
+		List<File> failed = new ArrayList<File>();
+		for (File dir : completeSnapshots(parent)) {
+			List<Partition> partitions;
+			try {
+				partitions = load(dir);
+			} catch (IOException e) {
+				System.out.println(e.getMessage() + ": " + e.getCause());
+				failure = e;
+				failed.add(dir);
+				continue;
+			}
+			for (File bad : failed) {
+				new File(bad, COMPLETE).delete();
+				sync(bad);
+			}
+			return partitions;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return new ArrayList<Partition>();
+	}
+
+	/**
+	 * Load a snapshot. The partition files are loaded in parallel.
+	 */
+	private static List<Partition> load(File latest) throws IOException {
+		List<Partition> partitions = new ArrayList<Partition>();
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors());
+		try {
+			List<Future<Partition>> loading = new ArrayList<Future<Partition>>();
+			for (final File file : latest.listFiles()) {
+				if (file.getName().endsWith(".bin")) {
+					loading.add(pool.submit(new Callable<Partition>() {
+						public Partition call() throws IOException {
+							return read(file);
+						}
+					}));
+				}
+			}
+			for (Future<Partition> partition : loading) {
+				partitions.add(partition.get());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Snapshot loading interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Cannot load " + latest, e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return partitions;
+	}
+
+	/**
+	 * Read a partition file.
+	 */
+	private static Partition read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a partition file: " + file);
+			}
+			Partition partition = new Partition();
+			partition.receiverID = in.readInt();
+			partition.committedOffset = in.readLong();
+			int count = in.readInt();
+			partition.messages = new ArrayList<Message>(count);
+			partition.attempts = new int[count];
+			for (int i = 0; i < count; i++) {
+				Message message = readMessage(in, partition.receiverID);
+				partition.messages.add(message);
+				partition.attempts[i] = message.attempts;
+			}
+			count = in.readInt();
+			partition.deadLetters = new ArrayList<Message>(count);
+			for (int i = 0; i < count; i++) {
+				partition.deadLetters.add(readMessage(in, partition.receiverID));
+			}
+			return partition;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeMessage(DataOutputStream out, Message message,
+			int attempts) throws IOException {
+		out.writeInt(message.senderID);
+		out.writeInt(attempts);
+		writeString(out, message.messageText);
+		out.writeInt(message.headers.size());
+		for (Map.Entry<String, String> header : message.headers.entrySet()) {
+			writeString(out, header.getKey());
+			writeString(out, header.getValue());
+		}
+	}
+
+	private static Message readMessage(DataInputStream in, int receiverID)
+			throws IOException {
+		int senderID = in.readInt();
+		int attempts = in.readInt();
+		Message message = new Message(senderID, receiverID, readString(in));
+		message.attempts = attempts;
+		int headers = in.readInt();
+		if (headers > 0) {
+			message.headers = new HashMap<String, String>(headers * 2);
+			for (int i = 0; i < headers; i++) {
+				message.headers.put(readString(in), readString(in));
+			}
+		}
+		return message;
+	}
+
+	private static void writeString(DataOutputStream out, String text)
+			throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Return the complete snapshots in the given directory, the latest first.
+	 */
+	private static List<File> completeSnapshots(File parent) {
+		List<File> snapshots = new ArrayList<File>();
+		File[] files = parent.listFiles();
+		if (files != null) {
+			for (File dir : files) {
+				if (dir.getName().startsWith(PREFIX)
+						&& new File(dir, COMPLETE).exists()) {
+					snapshots.add(dir);
+				}
+			}
+		}
+		Collections.sort(snapshots, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long sa = sequence(a);
+				long sb = sequence(b);
+				return sa > sb ? -1 : (sa == sb ? 0 : 1);
+			}
+		});
+		return snapshots;
+	}
+
+	/**
+	 * Sync a directory, so the files created in it are on the disk. Not
+	 * every platform can open a directory, there it is left to the file
+	 * system.
+	 */
+	private static void sync(File dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(),
+					StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	private static long sequence(File dir) {
+		try {
+			return Long.parseLong(dir.getName().substring(PREFIX.length()));
+		} catch (NumberFormatException exc) {
+			return -1;
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,36 @@
+import java.io.Serializable;
+
+/**
+ * Class Subscription is sent by a Receiver to the MQServer to join the
+ * consumer group of a receiverID. All Receivers with the same receiverID share
+ * its messages.
+ */
+public class Subscription implements Serializable {
+
+	int receiverID;
+	// If true, all messages from the same senderID go to the same Receiver of
+	// the group, in order
+	boolean keyOrdered;
+	// Selector text, only the matching messages are delivered to the group,
+	// null to deliver all messages
+	String selector;
+
+	/**
+	 * Constructor to set the ReceiverID and the ordering of the group
+	 */
+	Subscription(int receiverID, boolean keyOrdered) {
+		this(receiverID, keyOrdered, null);
+	}
+
+	/**
+	 * Constructor to set the ReceiverID, the ordering and the selector of the
+	 * group
+	 */
+	Subscription(int receiverID, boolean keyOrdered, String selector) {
+		this.receiverID = receiverID;
+		this.keyOrdered = keyOrdered;
+		this.selector = selector;
+
+	}
+
+}